@@ -18,8 +18,10 @@ package john.bacon.expbplus;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
+import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -30,8 +32,6 @@ import android.view.animation.AnticipateInterpolator;
 import android.view.animation.OvershootInterpolator;
 import android.widget.ImageButton;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
-import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.nineoldandroids.animation.Animator;
@@ -44,7 +44,7 @@ import java.util.List;
 import diok.per.expbmenu.R;
 
 @SuppressWarnings("ConstantConditions")
-public class ExpandableButtonMenu extends RelativeLayout implements View.OnClickListener {
+public class ExpandableButtonMenu extends ExpandableMenuLayout implements View.OnClickListener {
 
     /**
      * DEFAULT BUTTON SIZE AND DISTANCE VALUES
@@ -63,11 +63,6 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
     protected int sWidth;
     protected int sHeight;
 
-    /**
-     * Parent for items
-     */
-    private RelativeLayout rl_decor;
-
     /**
      * Close Button
      */
@@ -126,6 +121,10 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
      * backgroud color for menu
      */
     protected int backColor;
+    /**
+     * Flag indicating that backColor is drawn by the window instead of the menu
+     */
+    protected boolean mergedBackground;
 
     /**
      * Button click interface. Use setOnMenuButtonClickListener() to
@@ -146,7 +145,31 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
     /**
      * We don't use AnimatorSet so we have our own counter to see whether all animations have ended
      */
-    private volatile byte ANIMATION_COUNTER;
+    private int ANIMATION_COUNTER;
+
+    /**
+     * Number of item animations started by the current expand or collapse. Captured
+     * at start so that add() or clear() during an animation can't change the target.
+     */
+    private int mAnimatedCount;
+
+    private final ExpandableMenuMetrics mMetrics = new ExpandableMenuMetrics();
+
+    /**
+     * Number of times the menu was actually measured, unchanged while measure
+     * passes are answered from the measure cache
+     */
+    private int mMeasurePasses;
+
+    /**
+     * Flag indicating that pending label and icon updates will be applied on the next frame
+     */
+    private boolean mUpdateScheduled;
+
+    /**
+     * Views changed by the last batch of pending updates, reused between frames
+     */
+    private View[] mUpdatedViews = new View[0];
 
     /**
      * Collapse and expand animation duration
@@ -210,11 +233,18 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
     }
 
     /**
-     * Returns the menu button container. The first child of the container is
-     * a TextView, the second - an ImageButton
+     * Returns the menu button only. Its label is a separate sibling view, see
+     * getTextView(); use getMenuItem() to hide or move button and label together.
      */
     public View getMenuButton(int pos) {
-        return list.get(pos).getContainer();
+        return list.get(pos).getBtn();
+    }
+
+    /**
+     * Returns the whole menu item, i.e. the button together with its label
+     */
+    public ExpandableButtonEntity getMenuItem(int pos) {
+        return list.get(pos);
     }
 
     /**
@@ -258,6 +288,93 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         list.get(pos).getText().setText(text);
     }
 
+    /**
+     * Queue a new label for a menu button. Updates posted within one frame are
+     * coalesced per item and applied together on the next frame; a label that
+     * still fits its bounds is only redrawn, without relayouting the menu.
+     * Meant for frequently changing content such as counters or timers.
+     */
+    public void updateMenuButtonText(int pos, String text) {
+        ExpandableButtonEntity entity = list.get(pos);
+        entity.pendingText = text;
+        entity.hasPendingText = true;
+        scheduleUpdate();
+    }
+
+    /**
+     * Queue a new image for a menu button, see updateMenuButtonText()
+     */
+    public void updateMenuButtonImage(int pos, Drawable drawable) {
+        ExpandableButtonEntity entity = list.get(pos);
+        entity.pendingDrawable = drawable;
+        entity.hasPendingDrawable = true;
+        scheduleUpdate();
+    }
+
+    private void scheduleUpdate() {
+        if (mUpdateScheduled) return;
+        if (getWindowToken() == null) {
+            // not on screen, there is no frame to wait for
+            applyPendingUpdates();
+            return;
+        }
+        mUpdateScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnAnimation(mApplyPendingUpdates);
+        } else {
+            post(mApplyPendingUpdates);
+        }
+    }
+
+    private final Runnable mApplyPendingUpdates = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateScheduled = false;
+            applyPendingUpdates();
+        }
+    };
+
+    /**
+     * Apply the latest queued label and icon of every item in one in place update
+     */
+    private void applyPendingUpdates() {
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.applyPendingUpdates", list.size());
+        try {
+            if (mUpdatedViews.length < list.size() * 2) {
+                mUpdatedViews = new View[list.size() * 2];
+            }
+            int count = 0;
+            beginInPlaceUpdate();
+            try {
+                for (ExpandableButtonEntity entity : list) {
+                    if (entity.hasPendingText) {
+                        entity.hasPendingText = false;
+                        if (!TextUtils.equals(entity.getText().getText(), entity.pendingText)) {
+                            entity.getText().setText(entity.pendingText);
+                            mUpdatedViews[count++] = entity.getText();
+                        }
+                        entity.pendingText = null;
+                    }
+                    if (entity.hasPendingDrawable) {
+                        entity.hasPendingDrawable = false;
+                        if (entity.getBtn().getDrawable() != entity.pendingDrawable) {
+                            entity.getBtn().setImageDrawable(entity.pendingDrawable);
+                            mUpdatedViews[count++] = entity.getBtn();
+                        }
+                        entity.pendingDrawable = null;
+                    }
+                }
+            } finally {
+                endInPlaceUpdate(mUpdatedViews, count);
+            }
+            for (int i = 0; i < count; i++) {
+                mUpdatedViews[i] = null;
+            }
+        } finally {
+            MenuTrace.endSection(traced);
+        }
+    }
+
     public void setAllowOverlayClose(boolean allow) {
         mAllowOverlayClose = allow;
     }
@@ -270,6 +387,61 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         return mExpanded;
     }
 
+    public boolean isAnimating() {
+        return mAnimating;
+    }
+
+    /**
+     * Returns counters of completed expand and collapse animations
+     */
+    public ExpandableMenuMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        mMeasurePasses++;
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+
+    int getMeasurePasses() {
+        return mMeasurePasses;
+    }
+
+    /**
+     * Leave the background color to the window, which draws it together with the
+     * screen dim, see getMergedBackgroundColor(). Pass false to draw it again.
+     */
+    public void setMergedBackground(boolean merged) {
+        mergedBackground = merged;
+        if (merged) {
+            setBackgroundDrawable(null);
+        } else {
+            setBackgroundColor(backColor);
+        }
+    }
+
+    /**
+     * Returns the background color composited over a screen dim of the given amount,
+     * a single fill that looks like the menu background over a dimmed window
+     */
+    public int getMergedBackgroundColor(float dimAmount) {
+        return blendOverDim(backColor, dimAmount);
+    }
+
+    /**
+     * Composites a color over black of the given opacity, which is what the window
+     * dim below the menu would produce
+     */
+    private static int blendOverDim(int color, float dimAmount) {
+        float alpha = Color.alpha(color) / 255f;
+        float outAlpha = alpha + dimAmount * (1 - alpha);
+        if (outAlpha <= 0) return Color.TRANSPARENT;
+        float scale = alpha / outAlpha;
+        return Color.argb(Math.round(outAlpha * 255), Math.round(Color.red(color) * scale),
+                Math.round(Color.green(color) * scale), Math.round(Color.blue(color) * scale));
+    }
+
     public boolean isAllowOverlayClose() {
         return mAllowOverlayClose;
     }
@@ -301,6 +473,52 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         }
     }
 
+    /**
+     * Put the menu into its expanded state without running the expand animation.
+     * Used to bring an open menu back after the activity has been recreated.
+     */
+    public void expandImmediately() {
+        if (mExpanded || mAnimating) return;
+        mCloseBtn.setVisibility(View.VISIBLE);
+        for (int i = 0; i < list.size(); i++) {
+            ExpandableButtonEntity entity = list.get(i);
+            entity.setVisibility(VISIBLE);
+            entity.setTranslation(getItemTranslationX(i), getItemTranslationY(i));
+            entity.setAlpha(1.0f);
+        }
+        mExpanded = true;
+    }
+
+    /**
+     * Put the menu into its collapsed state without running the collapse animation,
+     * cancelling any running expand or collapse. Used when the dialog is dismissed
+     * behind the menu's back, e.g. when the overlay is detached.
+     */
+    public void collapseImmediately() {
+        removeCallbacks(mDismissParent);
+        // end callbacks of the cancelled animations are ignored while not animating
+        mAnimating = false;
+        for (ExpandableButtonEntity entity : list) {
+            ViewPropertyAnimator.animate(entity.getBtn()).cancel();
+            ViewPropertyAnimator.animate(entity.getText()).cancel();
+            entity.setTranslation(0, 0);
+            entity.setAlpha(0.3f);
+            entity.setVisibility(INVISIBLE);
+            entity.getBtn().setEnabled(true);
+        }
+        mCloseBtn.setVisibility(View.INVISIBLE);
+        mCloseBtn.setEnabled(true);
+        mOverlay.setEnabled(true);
+        mExpanded = false;
+    }
+
+    /**
+     * Returns the number of items added to the menu
+     */
+    public int getItemCount() {
+        return list.size();
+    }
+
     @Override
     public void onClick(View v) {
         int id = v.getId();
@@ -319,16 +537,20 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
      * Inflates the view
      */
     private void inflate() {
-        ((LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE)).inflate(R.layout.ebm__menu, this, true);
-
-        mOverlay = findViewById(R.id.ebm__menu_overlay);
-
-        mCloseBtn = findViewById(R.id.ebm__menu_close_image);
-        rl_decor = findViewById(R.id.rl_decor);
-        sWidth = ScreenHelper.getScreenWidth(getContext());
-        sHeight = ScreenHelper.getScreenHeight(getContext());
-        mCloseBtn.setOnClickListener(this);
-        mOverlay.setOnClickListener(this);
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.inflate");
+        try {
+            ((LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE)).inflate(R.layout.ebm__menu, this, true);
+
+            mOverlay = findViewById(R.id.ebm__menu_overlay);
+
+            mCloseBtn = findViewById(R.id.ebm__menu_close_image);
+            sWidth = ScreenHelper.getScreenWidth(getContext());
+            sHeight = ScreenHelper.getScreenHeight(getContext());
+            mCloseBtn.setOnClickListener(this);
+            mOverlay.setOnClickListener(this);
+        } finally {
+            MenuTrace.endSection(traced);
+        }
     }
 
     /**
@@ -337,25 +559,30 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
      * @param attrs
      */
     private void parseAttributes(AttributeSet attrs) {
-        if (attrs != null) {
-            TypedArray a = getContext().getTheme().obtainStyledAttributes(attrs, R.styleable.ExpandableMenuOverlay, 0, 0);
-            try {
-                // button metrics
-                bottomPadding = a.getDimension(R.styleable.ExpandableMenuOverlay_bottomPad, DEFAULT_BOTTOM_PADDING);
-                buttonDistanceY = a.getFloat(R.styleable.ExpandableMenuOverlay_distanceY, DEFAULT_BUTTON_DISTANCE_Y);
-                buttonDistanceX = a.getFloat(R.styleable.ExpandableMenuOverlay_distanceX, DEFAULT_BUTTON_DISTANCE_X);
-                itemSize = a.getDimension(R.styleable.ExpandableMenuOverlay_itemSize, DEFAULT_ITEM_SIZE);
-                closeSize = a.getDimension(R.styleable.ExpandableMenuOverlay_closeSize, DEFAULT_ITEM_SIZE);
-                numColumns = a.getInt(R.styleable.ExpandableMenuOverlay_numColumn, DEFAULT_NUN_COLUMN);
-                lines = a.getInt(R.styleable.ExpandableMenuOverlay_android_lines, DEFAULT_LINES);
-                textColor = a.getColorStateList(R.styleable.ExpandableMenuOverlay_android_textColor);
-                backColor = a.getColor(R.styleable.ExpandableMenuOverlay_backColor, getResources().getColor(R.color.back_default));
-
-                // button resources
-                mCloseBtn.setBackgroundResource(a.getResourceId(R.styleable.ExpandableMenuOverlay_closeButtonSrc, 0));
-            } finally {
-                a.recycle();
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.parseAttributes");
+        try {
+            if (attrs != null) {
+                TypedArray a = getContext().getTheme().obtainStyledAttributes(attrs, R.styleable.ExpandableMenuOverlay, 0, 0);
+                try {
+                    // button metrics
+                    bottomPadding = a.getDimension(R.styleable.ExpandableMenuOverlay_bottomPad, DEFAULT_BOTTOM_PADDING);
+                    buttonDistanceY = a.getFloat(R.styleable.ExpandableMenuOverlay_distanceY, DEFAULT_BUTTON_DISTANCE_Y);
+                    buttonDistanceX = a.getFloat(R.styleable.ExpandableMenuOverlay_distanceX, DEFAULT_BUTTON_DISTANCE_X);
+                    itemSize = a.getDimension(R.styleable.ExpandableMenuOverlay_itemSize, DEFAULT_ITEM_SIZE);
+                    closeSize = a.getDimension(R.styleable.ExpandableMenuOverlay_closeSize, DEFAULT_ITEM_SIZE);
+                    numColumns = a.getInt(R.styleable.ExpandableMenuOverlay_numColumn, DEFAULT_NUN_COLUMN);
+                    lines = a.getInt(R.styleable.ExpandableMenuOverlay_android_lines, DEFAULT_LINES);
+                    textColor = a.getColorStateList(R.styleable.ExpandableMenuOverlay_android_textColor);
+                    backColor = a.getColor(R.styleable.ExpandableMenuOverlay_backColor, getResources().getColor(R.color.back_default));
+
+                    // button resources
+                    mCloseBtn.setBackgroundResource(a.getResourceId(R.styleable.ExpandableMenuOverlay_closeButtonSrc, 0));
+                } finally {
+                    a.recycle();
+                }
             }
+        } finally {
+            MenuTrace.endSection(traced);
         }
     }
 
@@ -371,7 +598,7 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         rParams.height = (int) (closeSize);
         rParams.setMargins(0, 0, 0, (int) bottomPadding);
 
-        rl_decor.setBackgroundColor(backColor);
+        setBackgroundColor(backColor);
     }
 
     /**
@@ -389,40 +616,80 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
      * Start expand animation
      */
     private void animateExpand() {
-        mCloseBtn.setVisibility(View.VISIBLE);
-        ANIMATION_COUNTER = 0;
-        if (list != null)
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.animateExpand", list.size());
+        try {
+            mCloseBtn.setVisibility(View.VISIBLE);
+            ANIMATION_COUNTER = 0;
+            mAnimatedCount = list.size();
+            if (mAnimatedCount == 0) {
+                // nothing to animate, there would be no end callback to finish the toggle
+                onExpandCollapseEnd();
+                return;
+            }
             for (int i = 0; i < list.size(); i++) {
                 ExpandableButtonEntity entity = list.get(i);
-                entity.getContainer().setVisibility(VISIBLE);
+                entity.setVisibility(VISIBLE);
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
-                    ViewHelper.setAlpha(entity.getContainer(), 1.0f);
+                    ViewHelper.setAlpha(entity.getBtn(), 1.0f);
+                    ViewHelper.setAlpha(entity.getText(), 1.0f);
                 }
 
-                float transX = ((i % numColumns) - ((numColumns + (2 * (numColumns % 2) - 1) - 2 * (numColumns % 2)) / 2.0f)) * TRANSLATION_X;
-                float transY = -TRANSLATION_Y * ((i / numColumns) + 1);
-
-                ViewPropertyAnimator.animate(entity.getContainer()).setDuration(ANIMATION_DURATION).translationYBy(transY).translationXBy(transX).alpha(1.0f).setInterpolator(overshoot).setListener(ON_EXPAND_COLLAPSE_LISTENER);
+                animateEntity(entity, getItemTranslationX(i), getItemTranslationY(i), 1.0f);
             }
+        } finally {
+            MenuTrace.endSection(traced);
+        }
     }
 
     /**
      * Start collapse animation
      */
     private void animateCollapse() {
-        mCloseBtn.setVisibility(View.VISIBLE);
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.animateCollapse", list.size());
+        try {
+            mCloseBtn.setVisibility(View.VISIBLE);
 
-        ANIMATION_COUNTER = 0;
-
-        for (int i = 0; i < list.size(); i++) {
-            float transX = -((i % numColumns) - ((numColumns + (2 * (numColumns % 2) - 1) - 2 * (numColumns % 2)) / 2.0f)) * TRANSLATION_X;
-            float transY = TRANSLATION_Y * ((i / numColumns) + 1);
+            ANIMATION_COUNTER = 0;
+            mAnimatedCount = list.size();
+            if (mAnimatedCount == 0) {
+                mParent.showInitButton();
+                onExpandCollapseEnd();
+                return;
+            }
 
-            ViewPropertyAnimator.animate(list.get(i).getContainer()).setDuration(ANIMATION_DURATION).translationYBy(transY).
-                    translationXBy(transX).alpha(0.3f).setInterpolator(overshoot).setListener(ON_EXPAND_COLLAPSE_LISTENER);
+            for (int i = 0; i < list.size(); i++) {
+                animateEntity(list.get(i), -getItemTranslationX(i), -getItemTranslationY(i), 0.3f);
+            }
+        } finally {
+            MenuTrace.endSection(traced);
         }
     }
 
+    /**
+     * Horizontal offset of an expanded item from its collapsed position
+     */
+    private float getItemTranslationX(int pos) {
+        return ((pos % numColumns) - ((numColumns + (2 * (numColumns % 2) - 1) - 2 * (numColumns % 2)) / 2.0f)) * TRANSLATION_X;
+    }
+
+    /**
+     * Vertical offset of an expanded item from its collapsed position
+     */
+    private float getItemTranslationY(int pos) {
+        return -TRANSLATION_Y * ((pos / numColumns) + 1);
+    }
+
+    /**
+     * Moves an item's button and label together. Only the button animation reports
+     * back to the expand/collapse listener, so each item is counted once.
+     */
+    private void animateEntity(ExpandableButtonEntity entity, float transX, float transY, float alpha) {
+        ViewPropertyAnimator.animate(entity.getBtn()).setDuration(ANIMATION_DURATION).translationYBy(transY).
+                translationXBy(transX).alpha(alpha).setInterpolator(overshoot).setListener(ON_EXPAND_COLLAPSE_LISTENER);
+        ViewPropertyAnimator.animate(entity.getText()).setDuration(ANIMATION_DURATION).translationYBy(transY).
+                translationXBy(transX).alpha(alpha).setInterpolator(overshoot).setListener(null);
+    }
+
     /**
      * Listener for expand and collapse animations
      */
@@ -437,36 +704,15 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
 
         @Override
         public void onAnimationEnd(Animator animation) {
+            // a cancelled animation still ends, so every started item is counted exactly once
+            if (!mAnimating) return;
             ANIMATION_COUNTER++;
             if (ANIMATION_COUNTER == 1 && mExpanded)
                 mParent.showInitButton();
 
-            if (ANIMATION_COUNTER == numColumns) {
-
-                if (mExpanded) {
-                    mCloseBtn.setVisibility(View.GONE);
-                    for (ExpandableButtonEntity entity : list) {
-                        entity.getContainer().setVisibility(GONE);
-                    }
-
-                    postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            mParent.dismiss();
-                            mParent.mDismissing = false;
-                        }
-                    }, 75);
-                }
-
-                mAnimating = false;
-                mExpanded = !mExpanded;
-
-
-                mCloseBtn.setEnabled(true);
-                for (ExpandableButtonEntity entity : list) {
-                    entity.getBtn().setEnabled(true);
-                }
-                mOverlay.setEnabled(true);
+            // wait for all items, not just the first row, before accepting new toggles
+            if (ANIMATION_COUNTER == mAnimatedCount) {
+                onExpandCollapseEnd();
             }
 
         }
@@ -480,6 +726,48 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         }
     };
 
+    /**
+     * Closes the dialog shortly after the collapse animation has finished
+     */
+    private final Runnable mDismissParent = new Runnable() {
+        @Override
+        public void run() {
+            mParent.dismiss();
+            mParent.mDismissing = false;
+        }
+    };
+
+    /**
+     * Finish an expand or collapse once all item animations have ended
+     */
+    private void onExpandCollapseEnd() {
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.onExpandCollapseEnd", list.size());
+        try {
+            if (mExpanded) {
+                // invisible rather than gone, collapsed items keep their layout so
+                // showing them again doesn't relayout the menu
+                mCloseBtn.setVisibility(View.INVISIBLE);
+                for (ExpandableButtonEntity entity : list) {
+                    entity.setVisibility(INVISIBLE);
+                }
+
+                postDelayed(mDismissParent, 75);
+            }
+
+            mAnimating = false;
+            mExpanded = !mExpanded;
+            mMetrics.onToggleCompleted(mExpanded);
+
+            mCloseBtn.setEnabled(true);
+            for (ExpandableButtonEntity entity : list) {
+                entity.getBtn().setEnabled(true);
+            }
+            mOverlay.setEnabled(true);
+        } finally {
+            MenuTrace.endSection(traced);
+        }
+    }
+
     /**
      * Button click callback interface
      */
@@ -487,7 +775,7 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         public void onClick(int pos);
     }
 
-    private ImageButton getButton(int pos) {
+    ImageButton getButton(int pos) {
         return list.get(pos).getBtn();
 
     }
@@ -496,47 +784,62 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
         return list.get(pos).getText();
     }
 
+    /**
+     * Returns the id of a menu button, View.NO_ID unless it was added with one
+     */
+    public int getItemId(int pos) {
+        return list.get(pos).getBtn().getId();
+    }
+
     public void add(Context context, Drawable drawable, String txt) {
-        ExpandableButtonEntity entity = new ExpandableButtonEntity(context, drawable, txt);
-        list.add(entity);
-        rl_decor.addView(entity.getContainer());
-        invalidate();
+        add(context, View.NO_ID, drawable, txt);
+    }
+
+    /**
+     * Add a menu button with an id, e.g. one declared in a menu XML resource
+     */
+    public void add(Context context, int id, Drawable drawable, String txt) {
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.add", list.size() + 1);
+        try {
+            ExpandableButtonEntity entity = new ExpandableButtonEntity(context, drawable, txt);
+            entity.getBtn().setId(id);
+            list.add(entity);
+            addView(entity.getBtn());
+            addView(entity.getText());
+            invalidate();
+        } finally {
+            MenuTrace.endSection(traced);
+        }
     }
 
     public void clear() {
-        rl_decor.removeAllViews();
-        rl_decor.addView(mCloseBtn);
-        list.clear();
-        currentIndex = 0;
+        boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.clear", list.size());
+        try {
+            int first = indexOfChild(mCloseBtn) + 1;
+            removeViews(first, getChildCount() - first);
+            list.clear();
+            currentIndex = 0;
+        } finally {
+            MenuTrace.endSection(traced);
+        }
     }
 
     public class ExpandableButtonEntity {
 
-        private LinearLayout container;
         private ImageButton btn;
         private TextView text;
 
-        public ExpandableButtonEntity(Context context, Drawable drawable, String txt) {
-            container = new LinearLayout(context);
-            RelativeLayout.LayoutParams lp_container = new RelativeLayout.LayoutParams((int) itemSize, ViewGroup.LayoutParams.WRAP_CONTENT);
-            lp_container.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
-            lp_container.addRule(RelativeLayout.CENTER_HORIZONTAL);
-            container.setLayoutParams(lp_container);
-            container.setOrientation(LinearLayout.VERTICAL);
-
-            btn = new ImageButton(context);
-            LinearLayout.LayoutParams lp_btn = new LinearLayout.LayoutParams((int) itemSize, (int) itemSize);
-            lp_btn.gravity = Gravity.CENTER_HORIZONTAL;
-            btn.setLayoutParams(lp_btn);
-            btn.setVisibility(View.VISIBLE);
-            btn.setBackgroundColor(context.getResources().getColor(android.R.color.transparent));
-            btn.setScaleType(ImageView.ScaleType.FIT_CENTER);
-            btn.setPadding(0, 0, 0, 0);
-            if (drawable != null)
-                btn.setImageDrawable(drawable);
+        /**
+         * Latest content queued by updateMenuButtonText() and updateMenuButtonImage()
+         */
+        private String pendingText;
+        private boolean hasPendingText;
+        private Drawable pendingDrawable;
+        private boolean hasPendingDrawable;
 
+        public ExpandableButtonEntity(Context context, Drawable drawable, String txt) {
             text = new TextView(context);
-            LinearLayout.LayoutParams lp_text = new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+            LayoutParams lp_text = new LayoutParams((int) itemSize, ViewGroup.LayoutParams.WRAP_CONTENT);
             lp_text.setMargins(0, 0, 0, (int) ScreenHelper.dpToPx(context, 3));
             text.setLayoutParams(lp_text);
             text.setLines(lines);
@@ -549,15 +852,43 @@ public class ExpandableButtonMenu extends RelativeLayout implements View.OnClick
                 text.setTextColor(textColor);
             text.setText(txt);
 
-            container.addView(btn);
-            container.addView(text);
+            // the button sits right above its label, both centered at the menu bottom
+            btn = new ImageButton(context);
+            LayoutParams lp_btn = new LayoutParams((int) itemSize, (int) itemSize);
+            lp_btn.stackOn = text;
+            btn.setLayoutParams(lp_btn);
+            btn.setVisibility(View.VISIBLE);
+            // no background layer, the icon is all that is drawn
+            btn.setBackgroundDrawable(null);
+            btn.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            btn.setPadding(0, 0, 0, 0);
+            if (drawable != null)
+                btn.setImageDrawable(drawable);
+
             btn.setTag(currentIndex);
             btn.setOnClickListener(ExpandableButtonMenu.this);
             currentIndex++;
         }
 
-        public View getContainer() {
-            return container;
+        public void setVisibility(int visibility) {
+            btn.setVisibility(visibility);
+            text.setVisibility(visibility);
+        }
+
+        public void setAlpha(float alpha) {
+            ViewHelper.setAlpha(btn, alpha);
+            ViewHelper.setAlpha(text, alpha);
+        }
+
+        /**
+         * Move button and label together. Note that expand and collapse animate
+         * the translation relative to its current value.
+         */
+        public void setTranslation(float x, float y) {
+            ViewHelper.setTranslationX(btn, x);
+            ViewHelper.setTranslationY(btn, y);
+            ViewHelper.setTranslationX(text, x);
+            ViewHelper.setTranslationY(text, y);
         }
 
 
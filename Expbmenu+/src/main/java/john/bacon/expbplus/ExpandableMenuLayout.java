@@ -0,0 +1,221 @@
+package john.bacon.expbplus;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Flat container for the expandable menu. Every child is measured exactly once
+ * and positioned directly against the bottom edge, so there is no nested
+ * RelativeLayout/LinearLayout and layout cost grows linearly with item count.
+ * <p>
+ * Children are either stretched over the whole container ({@link LayoutParams#fill})
+ * or centered horizontally at the bottom. A bottom-centered child may be stacked on
+ * another one ({@link LayoutParams#stackOn}), which is how an item icon sits right
+ * above its label.
+ */
+public class ExpandableMenuLayout extends ViewGroup {
+
+    /**
+     * Flag indicating that children are being updated in place and their layout
+     * requests must not travel up the hierarchy
+     */
+    private boolean mBlockLayoutRequests;
+
+    public ExpandableMenuLayout(Context context) {
+        this(context, null, 0);
+    }
+
+    public ExpandableMenuLayout(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public ExpandableMenuLayout(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+        int height = getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec);
+        setMeasuredDimension(width, height);
+
+        int fillWidthSpec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY);
+        int fillHeightSpec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY);
+        int childWidthSpec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.AT_MOST);
+        int childHeightSpec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.AT_MOST);
+
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() == GONE) continue;
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            if (lp.fill) {
+                child.measure(fillWidthSpec, fillHeightSpec);
+            } else {
+                measureBottomChild(child, lp, childWidthSpec, childHeightSpec);
+            }
+        }
+    }
+
+    /**
+     * Measures a single bottom-centered child against the given parent specs
+     */
+    void measureBottomChild(View child, LayoutParams lp, int parentWidthSpec, int parentHeightSpec) {
+        child.measure(getChildMeasureSpec(parentWidthSpec, 0, lp.width),
+                getChildMeasureSpec(parentHeightSpec, 0, lp.height));
+    }
+
+    @Override
+    public void requestLayout() {
+        if (!mBlockLayoutRequests) {
+            super.requestLayout();
+        }
+    }
+
+    /**
+     * Start changing the content of children in place. Until {@link #endInPlaceUpdate(View[], int)}
+     * their layout requests stop here instead of relayouting the whole window.
+     */
+    void beginInPlaceUpdate() {
+        mBlockLayoutRequests = true;
+    }
+
+    /**
+     * Finish an in place update. Children that asked for layout are measured again;
+     * if they still fit their current bounds they are laid out where they are and
+     * only redrawn, otherwise a regular layout pass is requested.
+     *
+     * @param children changed children
+     * @param count    number of valid entries in children
+     */
+    void endInPlaceUpdate(View[] children, int count) {
+        mBlockLayoutRequests = false;
+        if (isLayoutRequested()) {
+            // a layout pass is coming anyway
+            return;
+        }
+
+        int childWidthSpec = MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.AT_MOST);
+        int childHeightSpec = MeasureSpec.makeMeasureSpec(getMeasuredHeight(), MeasureSpec.AT_MOST);
+        boolean relayout = false;
+        for (int i = 0; i < count; i++) {
+            View child = children[i];
+            if (!child.isLayoutRequested()) continue;
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            int width = child.getWidth();
+            int height = child.getHeight();
+            if (lp.fill) {
+                child.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+            } else {
+                measureBottomChild(child, lp, childWidthSpec, childHeightSpec);
+            }
+            if (child.getMeasuredWidth() == width && child.getMeasuredHeight() == height) {
+                child.layout(child.getLeft(), child.getTop(), child.getRight(), child.getBottom());
+            } else {
+                relayout = true;
+            }
+        }
+        if (relayout) {
+            requestLayout();
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        int width = r - l;
+        int height = b - t;
+
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() == GONE) continue;
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            if (lp.fill) {
+                child.layout(0, 0, width, height);
+            } else {
+                int childWidth = child.getMeasuredWidth();
+                int left = (width - childWidth) / 2;
+                int bottom = height - getStackedOffset(lp);
+                child.layout(left, bottom - child.getMeasuredHeight(), left + childWidth, bottom);
+            }
+        }
+    }
+
+    /**
+     * Distance from the container bottom to the bottom edge of a child, taking the
+     * whole stack below it into account. Uses measured sizes only, so children may
+     * be laid out in any order.
+     */
+    private int getStackedOffset(LayoutParams lp) {
+        int offset = lp.bottomMargin;
+        View below = lp.stackOn;
+        while (below != null && below.getVisibility() != GONE) {
+            LayoutParams belowLp = (LayoutParams) below.getLayoutParams();
+            offset += below.getMeasuredHeight() + belowLp.bottomMargin;
+            below = belowLp.stackOn;
+        }
+        return offset;
+    }
+
+    @Override
+    public boolean shouldDelayChildPressedState() {
+        return false;
+    }
+
+    @Override
+    protected boolean checkLayoutParams(ViewGroup.LayoutParams p) {
+        return p instanceof LayoutParams;
+    }
+
+    @Override
+    protected LayoutParams generateDefaultLayoutParams() {
+        return new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+    }
+
+    @Override
+    public LayoutParams generateLayoutParams(AttributeSet attrs) {
+        return new LayoutParams(getContext(), attrs);
+    }
+
+    @Override
+    protected LayoutParams generateLayoutParams(ViewGroup.LayoutParams p) {
+        if (p instanceof MarginLayoutParams) {
+            return new LayoutParams((MarginLayoutParams) p);
+        }
+        return new LayoutParams(p);
+    }
+
+    public static class LayoutParams extends MarginLayoutParams {
+
+        /**
+         * Child covers the whole container, margins are ignored
+         */
+        public boolean fill;
+
+        /**
+         * Child is placed right above this sibling instead of the container bottom
+         */
+        public View stackOn;
+
+        public LayoutParams(Context c, AttributeSet attrs) {
+            super(c, attrs);
+            fill = width == MATCH_PARENT && height == MATCH_PARENT;
+        }
+
+        public LayoutParams(int width, int height) {
+            super(width, height);
+            fill = width == MATCH_PARENT && height == MATCH_PARENT;
+        }
+
+        public LayoutParams(MarginLayoutParams source) {
+            super(source);
+            fill = width == MATCH_PARENT && height == MATCH_PARENT;
+        }
+
+        public LayoutParams(ViewGroup.LayoutParams source) {
+            super(source);
+            fill = width == MATCH_PARENT && height == MATCH_PARENT;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package john.bacon.expbplus;
+
+import android.os.SystemClock;
+
+/**
+ * Counters collected by an expandable menu while it is used
+ */
+public class ExpandableMenuMetrics {
+
+    private int completedExpands;
+    private int completedCollapses;
+    private long firstToggleTime;
+    private long lastToggleTime;
+    private int preparedShows;
+    private int cancelledPrepares;
+    private long lastPrepareSavedNanos;
+    private long totalPrepareSavedNanos;
+
+    void onToggleCompleted(boolean expanded) {
+        long now = SystemClock.uptimeMillis();
+        if (completedExpands + completedCollapses == 0) {
+            firstToggleTime = now;
+        }
+        lastToggleTime = now;
+        if (expanded) {
+            completedExpands++;
+        } else {
+            completedCollapses++;
+        }
+    }
+
+    void onPreparedShow(long savedNanos) {
+        preparedShows++;
+        lastPrepareSavedNanos = savedNanos;
+        totalPrepareSavedNanos += savedNanos;
+    }
+
+    void onPrepareCancelled() {
+        cancelledPrepares++;
+    }
+
+    public int getCompletedExpands() {
+        return completedExpands;
+    }
+
+    public int getCompletedCollapses() {
+        return completedCollapses;
+    }
+
+    /**
+     * Returns the number of expand and collapse animations that ran to the end
+     */
+    public int getCompletedToggles() {
+        return completedExpands + completedCollapses;
+    }
+
+    /**
+     * Returns completed toggles per second between the first and the last one
+     */
+    public float getToggleThroughput() {
+        long elapsed = lastToggleTime - firstToggleTime;
+        if (elapsed <= 0) return 0;
+        return (getCompletedToggles() - 1) * 1000f / elapsed;
+    }
+
+    /**
+     * Returns the number of shows whose first frame reused the preparation made while
+     * the finger was down
+     */
+    public int getPreparedShows() {
+        return preparedShows;
+    }
+
+    /**
+     * Returns the number of preparations cancelled because the gesture became a scroll
+     * or was cancelled
+     */
+    public int getCancelledPrepares() {
+        return cancelledPrepares;
+    }
+
+    /**
+     * Returns the preparation time taken off the last click, in milliseconds
+     */
+    public float getLastPrepareSavedMillis() {
+        return lastPrepareSavedNanos / 1000000f;
+    }
+
+    /**
+     * Returns the preparation time taken off all clicks, in milliseconds
+     */
+    public float getTotalPrepareSavedMillis() {
+        return totalPrepareSavedNanos / 1000000f;
+    }
+
+    public void reset() {
+        completedExpands = 0;
+        completedCollapses = 0;
+        firstToggleTime = 0;
+        lastToggleTime = 0;
+        preparedShows = 0;
+        cancelledPrepares = 0;
+        lastPrepareSavedNanos = 0;
+        totalPrepareSavedNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpandableMenuMetrics{expands=" + completedExpands
+                + ", collapses=" + completedCollapses
+                + ", togglesPerSecond=" + getToggleThroughput()
+                + ", preparedShows=" + preparedShows
+                + ", cancelledPrepares=" + cancelledPrepares
+                + ", prepareSavedMillis=" + getTotalPrepareSavedMillis() + "}";
+    }
+}
@@ -16,17 +16,33 @@
 
 package john.bacon.expbplus;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.app.Dialog;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.DialogInterface;
 import android.content.res.TypedArray;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewTreeObserver;
+import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageButton;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import diok.per.expbmenu.R;
 
 public class ExpandableMenuOverlay extends ImageButton implements DialogInterface.OnKeyListener, View.OnClickListener {
@@ -38,8 +54,54 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
 
     private float dimAmount = DEFAULT_DIM_AMOUNT;
 
+    /**
+     * Flag indicating that the menu draws the dim itself instead of the dialog window
+     */
+    private boolean mMergedDim;
+
+    /**
+     * System bar settings of the dialog window before merged dim mode changed them
+     */
+    private boolean mBarColorsSaved;
+    private boolean mDrewSystemBars;
+    private int mStatusBarColor;
+    private int mNavigationBarColor;
+
     protected boolean mDismissing;
 
+    /**
+     * Items of menus in retained mode, keyed by overlay id. Only filled while the
+     * owning activity is being recreated for a configuration change, consumed by
+     * the overlay of the new activity and dropped otherwise.
+     */
+    private static final SparseArray<RetainedMenu> sRetainedMenus = new SparseArray<>();
+    private static int sRetainKeys;
+
+    /**
+     * Flag indicating that the menu items survive activity recreation
+     */
+    private boolean mRetainInstance;
+
+    /**
+     * Flag indicating that the items were taken over from a previous instance
+     */
+    private boolean mRestored;
+
+    /**
+     * Flag indicating that the next show() brings the menu back expanded, without animation
+     */
+    private boolean mRestoreExpanded;
+
+    /**
+     * Speculative preparation started on touch-down, see onTouchEvent()
+     */
+    private final int mTouchSlop;
+    private float mDownX;
+    private float mDownY;
+    private boolean mPreparePending;
+    private boolean mPrepared;
+    private long mPrepareNanos;
+
     public ExpandableMenuOverlay(Context context) {
         this(context, null, 0);
     }
@@ -50,23 +112,31 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
 
     public ExpandableMenuOverlay(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
 
+        int menuRes = 0;
         if (attrs != null) {
             TypedArray a = context.getTheme().obtainStyledAttributes(attrs, R.styleable.ExpandableMenuOverlay, 0, 0);
             try {
                 dimAmount = a.getFloat(R.styleable.ExpandableMenuOverlay_dimAmount, DEFAULT_DIM_AMOUNT);
+                mRetainInstance = a.getBoolean(R.styleable.ExpandableMenuOverlay_retainInstance, false);
+                mMergedDim = a.getBoolean(R.styleable.ExpandableMenuOverlay_mergedDim, false);
+                menuRes = a.getResourceId(R.styleable.ExpandableMenuOverlay_menuItems, 0);
             } finally {
                 a.recycle();
             }
         }
 
         init(attrs);
+        restoreRetainedItems();
+        if (!mRestored && menuRes != 0) {
+            inflateMenu(menuRes);
+        }
     }
 
     public void init(AttributeSet attrs) {
         // We create a fake dialog which dims the screen and we display the expandable menu as content
         mDialog = new Dialog(getContext(), android.R.style.Theme_Translucent_NoTitleBar);
-        mDialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
 
         WindowManager.LayoutParams lp = mDialog.getWindow().getAttributes();
         lp.dimAmount = dimAmount;
@@ -74,13 +144,19 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
 
         mButtonMenu = new ExpandableButtonMenu(getContext(), attrs);
         mButtonMenu.setButtonMenuParentOverlay(this);
+        applyDimMode();
 
         mDialog.setContentView(mButtonMenu);
         mDialog.setOnShowListener(new DialogInterface.OnShowListener() {
             @Override
             public void onShow(DialogInterface dialogInterface) {
                 setVisibility(View.INVISIBLE);
-                mButtonMenu.toggle();
+                if (mRestoreExpanded) {
+                    mRestoreExpanded = false;
+                    mButtonMenu.expandImmediately();
+                } else {
+                    mButtonMenu.toggle();
+                }
             }
         });
 
@@ -93,19 +169,227 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
 
     }
 
+    /**
+     * Merge the screen dim into the menu background. The window then no longer dims
+     * behind the dialog but draws the menu background composited over the dim as its
+     * own background, so an open menu costs one full-screen fill per frame instead
+     * of a dim layer plus a background layer.
+     * <p>
+     * The window background covers the whole window frame whatever insets the
+     * content gets, so the window is laid out under the status bar, and from
+     * Lollipop under the navigation bar too, to draw the fill where the dim was.
+     * The menu itself stays inside the insets.
+     */
+    public void setMergedDim(boolean merged) {
+        mMergedDim = merged;
+        applyDimMode();
+    }
+
+    public boolean isMergedDim() {
+        return mMergedDim;
+    }
+
+    private void applyDimMode() {
+        Window window = mDialog.getWindow();
+        int layoutFlags = WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN | WindowManager.LayoutParams.FLAG_LAYOUT_INSET_DECOR;
+        if (mMergedDim) {
+            window.clearFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
+            window.addFlags(layoutFlags);
+            window.setBackgroundDrawable(new ColorDrawable(mButtonMenu.getMergedBackgroundColor(dimAmount)));
+            mButtonMenu.setMergedBackground(true);
+        } else {
+            window.addFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
+            window.clearFlags(layoutFlags);
+            window.setBackgroundDrawable(new ColorDrawable(Color.TRANSPARENT));
+            mButtonMenu.setMergedBackground(false);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            applySystemBarBackgrounds(window);
+        }
+    }
+
+    /**
+     * Let the window background show through the status and navigation bar strips
+     * in merged dim mode, the window dim used to darken them
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void applySystemBarBackgrounds(Window window) {
+        if (mMergedDim) {
+            if (!mBarColorsSaved) {
+                mDrewSystemBars = (window.getAttributes().flags & WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS) != 0;
+                mStatusBarColor = window.getStatusBarColor();
+                mNavigationBarColor = window.getNavigationBarColor();
+                mBarColorsSaved = true;
+            }
+            window.addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+            window.setStatusBarColor(Color.TRANSPARENT);
+            window.setNavigationBarColor(Color.TRANSPARENT);
+        } else if (mBarColorsSaved) {
+            if (!mDrewSystemBars) {
+                window.clearFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+            }
+            window.setStatusBarColor(mStatusBarColor);
+            window.setNavigationBarColor(mNavigationBarColor);
+            mBarColorsSaved = false;
+        }
+    }
+
     /**
      * Show the dialog, dimming the screen and expanding the button menu
      */
     public void show() {
-        mDialog.show();
+        boolean traced = MenuTrace.beginSection("ExpandableMenuOverlay.show", mButtonMenu.getItemCount());
+        try {
+            if (mPreparePending) {
+                removeCallbacks(mPrepare);
+                mPreparePending = false;
+            }
+            boolean prepared = mPrepared && !mDialog.getWindow().getDecorView().isLayoutRequested();
+            mPrepared = false;
+            mDialog.show();
+            if (prepared) {
+                creditPreparation(mPrepareNanos);
+            }
+        } finally {
+            MenuTrace.endSection(traced);
+        }
+    }
+
+    /**
+     * Count the preparation as saved time only if the first traversal of the dialog
+     * found the menu still measured, i.e. it didn't have to measure it again
+     */
+    private void creditPreparation(final long savedNanos) {
+        final int measurePasses = mButtonMenu.getMeasurePasses();
+        mButtonMenu.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                // the observer may have been merged into the window's one on attach
+                mButtonMenu.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (mButtonMenu.getMeasurePasses() == measurePasses) {
+                    mButtonMenu.getMetrics().onPreparedShow(savedNanos);
+                }
+                return true;
+            }
+        });
     }
 
     /**
      * Dismiss the dialog, removing screen dim and hiding the expanded menu
      */
     public void dismiss() {
-        mButtonMenu.setAnimating(false);
-        mDialog.dismiss();
+        boolean traced = MenuTrace.beginSection("ExpandableMenuOverlay.dismiss", mButtonMenu.getItemCount());
+        try {
+            mButtonMenu.setAnimating(false);
+            mDialog.dismiss();
+        } finally {
+            MenuTrace.endSection(traced);
+        }
+    }
+
+    /**
+     * Returns true while the dialog holding the expanded menu is shown
+     */
+    public boolean isShowing() {
+        return mDialog.isShowing();
+    }
+
+    /**
+     * Start preparing the menu on the frame after the finger goes down, so the time
+     * until the click is delivered is not wasted. Preparing only measures the detached
+     * dialog content, so doing it for a gesture that doesn't end in a click costs
+     * nothing visible; a scroll or a cancel just drops the result. Whatever the click
+     * doesn't take when the finger goes up is dropped as well.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mDownX = event.getX();
+                mDownY = event.getY();
+                if (!mDialog.isShowing() && !mPreparePending) {
+                    mPreparePending = true;
+                    // after the frame showing the pressed state
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                        postOnAnimation(mPrepare);
+                    } else {
+                        post(mPrepare);
+                    }
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                // too late to save anything now
+                removeCallbacks(mPrepare);
+                mPreparePending = false;
+                boolean handled = super.onTouchEvent(event);
+                // queued behind the click, if there is one, which takes the preparation first
+                post(mDropPreparation);
+                return handled;
+            case MotionEvent.ACTION_MOVE:
+                if (Math.abs(event.getX() - mDownX) > mTouchSlop || Math.abs(event.getY() - mDownY) > mTouchSlop) {
+                    cancelPrepare();
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                cancelPrepare();
+                break;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    private void cancelPrepare() {
+        if (mPreparePending || mPrepared) {
+            removeCallbacks(mPrepare);
+            mPreparePending = false;
+            mPrepared = false;
+            mButtonMenu.getMetrics().onPrepareCancelled();
+        }
+    }
+
+    /**
+     * Forgets a preparation no click used, so a later unrelated show() isn't credited
+     */
+    private final Runnable mDropPreparation = new Runnable() {
+        @Override
+        public void run() {
+            mPrepared = false;
+        }
+    };
+
+    private final Runnable mPrepare = new Runnable() {
+        @Override
+        public void run() {
+            mPreparePending = false;
+            prepare();
+        }
+    };
+
+    /**
+     * Measure and lay out the dialog content ahead of show(), at the size the dialog
+     * window had last time or, before its first show, at the size of the host window.
+     * Both fill the screen, so the first traversal after show() finds the menu
+     * measured and its labels' text layouts built. In merged dim mode the dialog also
+     * covers the status bar, so before the first show the two sizes may differ.
+     */
+    private void prepare() {
+        if (mDialog.isShowing()) return;
+        View decor = mDialog.getWindow().getDecorView();
+        View host = decor.getWidth() != 0 ? decor : getRootView();
+        int width = host.getWidth();
+        int height = host.getHeight();
+        if (width == 0 || height == 0) return;
+
+        boolean traced = MenuTrace.beginSection("ExpandableMenuOverlay.prepare", mButtonMenu.getItemCount());
+        try {
+            long start = System.nanoTime();
+            decor.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+            decor.layout(0, 0, width, height);
+            mPrepareNanos = System.nanoTime() - start;
+            mPrepared = true;
+        } finally {
+            MenuTrace.endSection(traced);
+        }
     }
 
     /**
@@ -134,6 +418,150 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
     }
 
 
+    /**
+     * Keep the menu items when the activity is recreated for a configuration change.
+     * Items are handed over to the overlay with the same id in the new activity; their
+     * drawables are shared rather than decoded again. A fresh launch always builds
+     * its own items. Should be set before the activity is recreated, or in XML with
+     * the retainInstance attribute.
+     */
+    public void setRetainInstance(boolean retain) {
+        mRetainInstance = retain;
+    }
+
+    public boolean isRetainInstance() {
+        return mRetainInstance;
+    }
+
+    /**
+     * Returns true if the items were taken over from a previous instance of this
+     * menu, in which case they should not be added again.
+     */
+    public boolean isRestored() {
+        return mRestored;
+    }
+
+    private void restoreRetainedItems() {
+        if (!mRetainInstance || getId() == View.NO_ID) return;
+        RetainedMenu retained = sRetainedMenus.get(getId());
+        if (retained == null) return;
+        sRetainedMenus.remove(getId());
+
+        for (int i = 0; i < retained.texts.size(); i++) {
+            Drawable.ConstantState icon = retained.icons.get(i);
+            mButtonMenu.add(getContext(), retained.ids.get(i), icon != null ? icon.newDrawable(getResources()) : null, retained.texts.get(i));
+        }
+        mRestored = true;
+    }
+
+    /**
+     * Hand the items over to the next instance, but only if the activity is about
+     * to be recreated. Saving state for backgrounding must not leave an entry that a
+     * later, unrelated launch would pick up.
+     *
+     * @return key of the retained entry, 0 if nothing was retained
+     */
+    private int retainItems() {
+        if (!mRetainInstance || getId() == View.NO_ID) return 0;
+        Activity activity = getActivity();
+        if (activity == null || !activity.isChangingConfigurations()) {
+            sRetainedMenus.remove(getId());
+            return 0;
+        }
+
+        RetainedMenu retained = new RetainedMenu();
+        retained.key = ++sRetainKeys;
+        for (int i = 0; i < mButtonMenu.getItemCount(); i++) {
+            Drawable icon = mButtonMenu.getButton(i).getDrawable();
+            retained.ids.add(mButtonMenu.getItemId(i));
+            retained.icons.add(icon != null ? icon.getConstantState() : null);
+            retained.texts.add(mButtonMenu.getTextView(i).getText().toString());
+        }
+        sRetainedMenus.put(getId(), retained);
+        return retained.key;
+    }
+
+    /**
+     * Drop an entry retained under the given key that no new overlay has taken over
+     */
+    private void dropRetainedItems(int key) {
+        if (key == 0 || getId() == View.NO_ID) return;
+        RetainedMenu retained = sRetainedMenus.get(getId());
+        if (retained != null && retained.key == key) {
+            sRetainedMenus.remove(getId());
+        }
+    }
+
+    private Activity getActivity() {
+        Context context = getContext();
+        while (context instanceof ContextWrapper) {
+            if (context instanceof Activity) return (Activity) context;
+            context = ((ContextWrapper) context).getBaseContext();
+        }
+        return null;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        SavedState ss = new SavedState(super.onSaveInstanceState());
+        // save where a running animation is heading, not where it started
+        boolean expanded = mButtonMenu.isAnimating() ? !mButtonMenu.isExpanded() : mButtonMenu.isExpanded();
+        ss.expanded = expanded && !mDismissing;
+        ss.retainKey = retainItems();
+        return ss;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState ss = (SavedState) state;
+        super.onRestoreInstanceState(ss.getSuperState());
+        // the constructor consumes the entry if it matched this overlay, anything left is stale
+        dropRetainedItems(ss.retainKey);
+
+        if (ss.expanded && !mDialog.isShowing()) {
+            mRestoreExpanded = true;
+            // wait for the window to be attached before showing the dialog
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    show();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // the trigger is only hidden by an open menu, any other visibility is the app's
+        boolean hiddenByMenu = mDialog.isShowing() || mButtonMenu.isExpanded() || mButtonMenu.isAnimating();
+        // the dialog would leak the window of a destroyed activity
+        if (mDialog.isShowing()) {
+            mDialog.dismiss();
+        }
+        // the overlay may be attached again without being recreated, e.g. from a
+        // fragment back stack, so leave the menu closed rather than half expanded
+        removeCallbacks(mPrepare);
+        removeCallbacks(mDropPreparation);
+        mPreparePending = false;
+        mPrepared = false;
+        mRestoreExpanded = false;
+        mDismissing = false;
+        mButtonMenu.collapseImmediately();
+        if (hiddenByMenu) {
+            setVisibility(View.VISIBLE);
+        }
+        // retained items are only for a recreation that is happening right now
+        Activity activity = getActivity();
+        if (mRetainInstance && getId() != View.NO_ID && (activity == null || !activity.isChangingConfigurations())) {
+            sRetainedMenus.remove(getId());
+        }
+        super.onDetachedFromWindow();
+    }
+
     @Override
     public boolean onKey(DialogInterface dialog, int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_BACK && event.getAction() == KeyEvent.ACTION_UP && !event.isCanceled() && !mDismissing) {
@@ -165,4 +593,58 @@ public class ExpandableMenuOverlay extends ImageButton implements DialogInterfac
         mButtonMenu.add(context, drawable, txt);
     }
 
+    /**
+     * Add the items declared in a menu XML resource, see {@link MenuDefinition}.
+     * The resource is parsed once per process and shared by all menus using it.
+     */
+    public void inflateMenu(int xmlRes) {
+        for (MenuDefinition.Item item : MenuDefinition.obtain(getResources(), xmlRes).getItems()) {
+            mButtonMenu.add(getContext(), item.getId(), item.newIcon(getResources()), item.getTitle());
+        }
+    }
+
+    /**
+     * Items kept for the next instance of a retained menu
+     */
+    private static class RetainedMenu {
+        int key;
+        final List<Integer> ids = new ArrayList<>();
+        final List<Drawable.ConstantState> icons = new ArrayList<>();
+        final List<String> texts = new ArrayList<>();
+    }
+
+    static class SavedState extends BaseSavedState {
+        boolean expanded;
+        int retainKey;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            expanded = in.readInt() != 0;
+            retainKey = in.readInt();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(expanded ? 1 : 0);
+            out.writeInt(retainKey);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
 }
@@ -0,0 +1,220 @@
+package john.bacon.expbplus;
+
+import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.util.TypedValue;
+import android.util.Xml;
+import android.view.View;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import diok.per.expbmenu.R;
+
+/**
+ * Menu items declared in an XML resource:
+ * <pre>
+ * &lt;expandable-menu xmlns:android="http://schemas.android.com/apk/res/android"&gt;
+ *     &lt;item android:id="@+id/menu_share" android:icon="@drawable/share" android:title="@string/share" /&gt;
+ * &lt;/expandable-menu&gt;
+ * </pre>
+ * A resource is parsed once per process. Later screens and recreated activities get
+ * the cached model with resolved titles, and icons share their decoded bitmaps.
+ * The cache entry is parsed again only when the configuration changes in a way that
+ * one of the resolved resources depends on, e.g. rotation for a title taken from
+ * values-land or values-w820dp.
+ */
+public class MenuDefinition {
+
+    private static final String TAG_ITEM = "item";
+
+    /**
+     * ActivityInfo configuration bits for the native bits TypedValue.changingConfigurations
+     * is reported in, indexed by native bit position
+     */
+    private static final int[] NATIVE_CONFIG_BITS = {
+            ActivityInfo.CONFIG_MCC,
+            ActivityInfo.CONFIG_MNC,
+            ActivityInfo.CONFIG_LOCALE,
+            ActivityInfo.CONFIG_TOUCHSCREEN,
+            ActivityInfo.CONFIG_KEYBOARD,
+            ActivityInfo.CONFIG_KEYBOARD_HIDDEN,
+            ActivityInfo.CONFIG_NAVIGATION,
+            ActivityInfo.CONFIG_ORIENTATION,
+            ActivityInfo.CONFIG_DENSITY,
+            ActivityInfo.CONFIG_SCREEN_SIZE,
+            0, // platform version, can't change while running
+            ActivityInfo.CONFIG_SCREEN_LAYOUT,
+            ActivityInfo.CONFIG_UI_MODE,
+            ActivityInfo.CONFIG_SMALLEST_SCREEN_SIZE,
+            ActivityInfo.CONFIG_LAYOUT_DIRECTION,
+    };
+
+    private static final SparseArray<MenuDefinition> sCache = new SparseArray<>();
+
+    private final Configuration configuration;
+
+    /**
+     * Configuration changes the resolved menu resource, titles and icons depend on
+     */
+    private final int changingConfigurations;
+    private final List<Item> items;
+
+    private MenuDefinition(Configuration configuration, int changingConfigurations, List<Item> items) {
+        this.configuration = configuration;
+        this.changingConfigurations = changingConfigurations;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Returns the parsed menu of an XML resource, parsing it only if it is not cached yet
+     */
+    public static MenuDefinition obtain(Resources res, int xmlRes) {
+        synchronized (sCache) {
+            MenuDefinition definition = sCache.get(xmlRes);
+            if (definition == null || (definition.configuration.diff(res.getConfiguration()) & definition.changingConfigurations) != 0) {
+                boolean traced = MenuTrace.beginSection("MenuDefinition.parse");
+                try {
+                    definition = parse(res, xmlRes);
+                } finally {
+                    MenuTrace.endSection(traced);
+                }
+                sCache.put(xmlRes, definition);
+            }
+            return definition;
+        }
+    }
+
+    /**
+     * Drop all cached definitions
+     */
+    public static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    private static MenuDefinition parse(Resources res, int xmlRes) {
+        TypedValue value = new TypedValue();
+        res.getValue(xmlRes, value, true);
+        int changingConfigurations = nativeToActivityInfoConfig(value.changingConfigurations);
+        List<Item> items = new ArrayList<>();
+        // items with the same icon share one decoded drawable state
+        SparseArray<Drawable.ConstantState> icons = new SparseArray<>();
+
+        XmlResourceParser parser = res.getXml(xmlRes);
+        try {
+            AttributeSet attrs = Xml.asAttributeSet(parser);
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG && TAG_ITEM.equals(parser.getName())) {
+                    Item item = parseItem(res, attrs, icons, value);
+                    changingConfigurations |= item.changingConfigurations;
+                    items.add(item);
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            throw new IllegalArgumentException("Error parsing expandable menu " + res.getResourceName(xmlRes), e);
+        } finally {
+            parser.close();
+        }
+        return new MenuDefinition(new Configuration(res.getConfiguration()), changingConfigurations, items);
+    }
+
+    private static Item parseItem(Resources res, AttributeSet attrs, SparseArray<Drawable.ConstantState> icons, TypedValue value) {
+        TypedArray a = res.obtainAttributes(attrs, R.styleable.ExpandableMenuItem);
+        try {
+            int id = a.getResourceId(R.styleable.ExpandableMenuItem_android_id, View.NO_ID);
+            int iconRes = a.getResourceId(R.styleable.ExpandableMenuItem_android_icon, 0);
+            int titleRes = a.getResourceId(R.styleable.ExpandableMenuItem_android_title, 0);
+            CharSequence title = a.getText(R.styleable.ExpandableMenuItem_android_title);
+
+            int changingConfigurations = 0;
+            if (titleRes != 0) {
+                res.getValue(titleRes, value, true);
+                changingConfigurations |= nativeToActivityInfoConfig(value.changingConfigurations);
+            }
+
+            Drawable.ConstantState icon = null;
+            if (iconRes != 0) {
+                icon = icons.get(iconRes);
+                if (icon == null) {
+                    icon = res.getDrawable(iconRes).getConstantState();
+                    icons.put(iconRes, icon);
+                }
+                res.getValue(iconRes, value, true);
+                // bitmaps are scaled to the screen density even without density qualifiers
+                changingConfigurations |= nativeToActivityInfoConfig(value.changingConfigurations)
+                        | ActivityInfo.CONFIG_DENSITY;
+                if (icon != null) {
+                    // drawables report native bits before M as well
+                    int iconConfigurations = icon.getChangingConfigurations();
+                    changingConfigurations |= Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                            ? iconConfigurations : nativeToActivityInfoConfig(iconConfigurations);
+                }
+            }
+            return new Item(id, icon, title != null ? title.toString() : null, changingConfigurations);
+        } finally {
+            a.recycle();
+        }
+    }
+
+    private static int nativeToActivityInfoConfig(int nativeConfig) {
+        int config = 0;
+        for (int i = 0; i < NATIVE_CONFIG_BITS.length; i++) {
+            if ((nativeConfig & (1 << i)) != 0) {
+                config |= NATIVE_CONFIG_BITS[i];
+            }
+        }
+        return config;
+    }
+
+    /**
+     * A single parsed menu item
+     */
+    public static class Item {
+
+        private final int id;
+        private final Drawable.ConstantState icon;
+        private final String title;
+        private final int changingConfigurations;
+
+        Item(int id, Drawable.ConstantState icon, String title, int changingConfigurations) {
+            this.id = id;
+            this.icon = icon;
+            this.title = title;
+            this.changingConfigurations = changingConfigurations;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns a new drawable sharing the cached bitmap, or null if the item has no icon
+         */
+        public Drawable newIcon(Resources res) {
+            return icon != null ? icon.newDrawable(res) : null;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+    }
+}
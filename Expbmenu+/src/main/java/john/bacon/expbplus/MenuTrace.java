@@ -0,0 +1,121 @@
+package john.bacon.expbplus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Named systrace/Perfetto sections for the menu lifecycle. Disabled by default;
+ * while disabled every call is a single static field check.
+ * <p>
+ * Section names are constant so the tools can aggregate them. Item counts are
+ * emitted on the "ExpandableButtonMenu.items" counter track instead.
+ * <pre>
+ * boolean traced = MenuTrace.beginSection("ExpandableButtonMenu.add", count);
+ * try {
+ *     ...
+ * } finally {
+ *     MenuTrace.endSection(traced);
+ * }
+ * </pre>
+ */
+public class MenuTrace {
+
+    private static final String ITEMS_COUNTER = "ExpandableButtonMenu.items";
+
+    private static boolean sEnabled;
+
+    /**
+     * Counter methods looked up by reflection, they are public only from API 29 and
+     * hidden before. sCounterFailed disables counters if the lookup or a call fails.
+     */
+    private static Method sSetCounter;
+    private static Method sTraceCounter;
+    private static long sTraceTagApp;
+    private static boolean sCounterFailed;
+
+    private MenuTrace() {
+    }
+
+    /**
+     * Enable trace sections. Requires API 18, ignored on older devices.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Begin a section
+     *
+     * @return whether the section was started, to be passed to {@link #endSection(boolean)}
+     */
+    static boolean beginSection(String name) {
+        if (sEnabled) {
+            begin(name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Begin a section and record the current item count on the items counter
+     *
+     * @return whether the section was started, to be passed to {@link #endSection(boolean)}
+     */
+    static boolean beginSection(String name, int items) {
+        if (sEnabled) {
+            begin(name);
+            setCounter(ITEMS_COUNTER, items);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * End a section. Only ends it if its begin was traced, so enabling or disabling
+     * tracing in between never pops a section that belongs to someone else.
+     */
+    static void endSection(boolean traced) {
+        if (traced) {
+            end();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void begin(String name) {
+        // section names are limited to 127 characters
+        Trace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void end() {
+        Trace.endSection();
+    }
+
+    private static void setCounter(String name, int value) {
+        if (sCounterFailed) return;
+        try {
+            if (Build.VERSION.SDK_INT >= 29) {
+                if (sSetCounter == null) {
+                    sSetCounter = Trace.class.getMethod("setCounter", String.class, long.class);
+                }
+                sSetCounter.invoke(null, name, (long) value);
+            } else {
+                if (sTraceCounter == null) {
+                    sTraceTagApp = Trace.class.getField("TRACE_TAG_APP").getLong(null);
+                    sTraceCounter = Trace.class.getMethod("traceCounter", long.class, String.class, int.class);
+                }
+                sTraceCounter.invoke(null, sTraceTagApp, name, value);
+            }
+        } catch (Exception e) {
+            // sections still work without the counter track
+            sCounterFailed = true;
+        }
+    }
+}
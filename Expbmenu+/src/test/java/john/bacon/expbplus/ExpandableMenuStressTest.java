@@ -0,0 +1,202 @@
+package john.bacon.expbplus;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.view.KeyEvent;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Random;
+
+import diok.per.expbmenu.R;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rapid-toggle stress and soak tests. The main looper is paused and advanced by
+ * hand, which also drives the animation clock, so thousands of randomly timed
+ * toggle, back key, overlay and item clicks run in a few seconds of real time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExpandableMenuStressTest {
+
+    /**
+     * Item counts that are and are not multiples of the default three columns
+     */
+    private static final int[] ITEM_COUNTS = {0, 1, 2, 3, 5, 6, 7, 8};
+
+    private static final int ACTIONS_PER_COUNT = 2000;
+    private static final int SOAK_ACTIONS = 50000;
+    private static final int SOAK_ITEMS = 8;
+    private static final int MAX_ACTION_DELAY = 80;
+    private static final int SETTLE_TIME = 2000;
+
+    /**
+     * Lowest accepted rate of completed toggles per simulated second. Random input
+     * opens and closes the menu a few times a second, a stuck or slowed down
+     * animation drops far below this.
+     */
+    private static final float MIN_TOGGLE_THROUGHPUT = 0.5f;
+
+    private ExpandableMenuOverlay mOverlay;
+    private ExpandableButtonMenu mMenu;
+    private Random mRandom;
+    private int mItemClicks;
+
+    @Before
+    public void setUp() {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        FrameLayout root = new FrameLayout(activity);
+        activity.setContentView(root);
+
+        mOverlay = new ExpandableMenuOverlay(activity);
+        // the trigger reacts to clicks on its own id
+        mOverlay.setId(View.generateViewId());
+        root.addView(mOverlay, new FrameLayout.LayoutParams(100, 100));
+        mMenu = mOverlay.getButtonMenu();
+        mMenu.setOnMenuButtonClickListener(new ExpandableButtonMenu.OnMenuButtonClick() {
+            @Override
+            public void onClick(int pos) {
+                mItemClicks++;
+            }
+        });
+
+        // a fixed seed keeps failures reproducible
+        mRandom = new Random(42);
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void randomInputAlwaysSettlesConsistently() {
+        for (int count : ITEM_COUNTS) {
+            populate(count);
+            mMenu.getMetrics().reset();
+
+            runRandomActions(ACTIONS_PER_COUNT);
+            settle();
+
+            assertConsistent("items=" + count);
+            ExpandableMenuMetrics metrics = mMenu.getMetrics();
+            System.out.println("items=" + count + " " + metrics);
+            assertThroughput("items=" + count);
+        }
+    }
+
+    @Test
+    public void expandAndCollapseCompleteWithFewerItemsThanColumns() {
+        populate(2);
+
+        mOverlay.performClick();
+        settle();
+        assertTrue(mMenu.isExpanded());
+        assertTrue(mOverlay.isShowing());
+
+        mOverlay.onKey(null, KeyEvent.KEYCODE_BACK, new KeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
+        settle();
+        assertConsistent("items=2");
+        assertFalse(mMenu.isExpanded());
+        assertEquals(1, mMenu.getMetrics().getCompletedExpands());
+        assertEquals(1, mMenu.getMetrics().getCompletedCollapses());
+    }
+
+    @Test
+    public void soakDoesNotAccumulateViewsOrCallbacks() {
+        populate(SOAK_ITEMS);
+        int childCount = mMenu.getChildCount();
+
+        runRandomActions(SOAK_ACTIONS);
+        settle();
+
+        // assertConsistent() also checks that no runnable or frame callback is left queued
+        assertConsistent("soak");
+        assertEquals("views leaked into the menu", childCount, mMenu.getChildCount());
+        System.out.println("soak " + mMenu.getMetrics() + " itemClicks=" + mItemClicks);
+        assertThroughput("soak");
+    }
+
+    private void runRandomActions(int actions) {
+        for (int i = 0; i < actions; i++) {
+            fireRandomAction();
+            ShadowLooper.idleMainLooper(mRandom.nextInt(MAX_ACTION_DELAY));
+        }
+    }
+
+    private void fireRandomAction() {
+        switch (mRandom.nextInt(5)) {
+            case 0:
+                clickIfEnabled(mOverlay);
+                break;
+            case 1:
+                clickIfEnabled(mMenu.findViewById(R.id.ebm__menu_close_image));
+                break;
+            case 2:
+                clickIfEnabled(mMenu.findViewById(R.id.ebm__menu_overlay));
+                break;
+            case 3:
+                if (mMenu.getItemCount() > 0)
+                    clickIfEnabled(mMenu.getMenuButton(mRandom.nextInt(mMenu.getItemCount())));
+                break;
+            default:
+                if (mOverlay.isShowing())
+                    mOverlay.onKey(null, KeyEvent.KEYCODE_BACK, new KeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
+                break;
+        }
+    }
+
+    private void clickIfEnabled(View v) {
+        // real touches only reach visible, enabled views
+        if (v != null && v.isShown() && v.isEnabled()) {
+            v.performClick();
+        }
+    }
+
+    /**
+     * Let running animations and the delayed dismiss finish, then close the menu
+     * if it ended up open
+     */
+    private void settle() {
+        ShadowLooper.idleMainLooper(SETTLE_TIME);
+        if (mMenu.isExpanded() && !mMenu.isAnimating()) {
+            mMenu.toggle();
+            ShadowLooper.idleMainLooper(SETTLE_TIME);
+        }
+    }
+
+    private void assertConsistent(String message) {
+        ExpandableMenuMetrics metrics = mMenu.getMetrics();
+        assertFalse("stuck animating, " + message, mMenu.isAnimating());
+        assertEquals("expanded without dialog or vice versa, " + message, mMenu.isExpanded(), mOverlay.isShowing());
+        assertFalse("left expanded, " + message, mMenu.isExpanded());
+        assertEquals("every expand must be followed by a collapse, " + message,
+                metrics.getCompletedExpands(), metrics.getCompletedCollapses());
+        assertEquals("trigger hidden, " + message, View.VISIBLE, mOverlay.getVisibility());
+        assertEquals("callbacks left queued, " + message,
+                0, ShadowLooper.getShadowMainLooper().getScheduler().size());
+    }
+
+    /**
+     * The metrics time toggles with SystemClock, which the paused looper advances,
+     * so the throughput is measured in simulated time
+     */
+    private void assertThroughput(String message) {
+        float throughput = mMenu.getMetrics().getToggleThroughput();
+        assertTrue("toggle throughput " + throughput + "/s, " + message, throughput >= MIN_TOGGLE_THROUGHPUT);
+    }
+
+    private void populate(int count) {
+        mMenu.clear();
+        for (int i = 0; i < count; i++) {
+            mOverlay.add(mOverlay.getContext(), new ColorDrawable(Color.RED), String.valueOf(i + 1));
+        }
+    }
+}
@@ -15,14 +15,7 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         ExpandableMenuOverlay button_menu = (ExpandableMenuOverlay) findViewById(R.id.button_menu);
-        button_menu.add(this, R.drawable.huaji, "1");
-        button_menu.add(this, R.drawable.huaji, "2");
-        button_menu.add(this, R.drawable.huaji, "3");
-        button_menu.add(this, R.drawable.huaji, "4");
-        button_menu.add(this, R.drawable.huaji, "5");
-        button_menu.add(this, R.drawable.huaji, "6");
-        button_menu.add(this, R.drawable.huaji, "7");
-        button_menu.add(this, R.drawable.huaji, "8");
+        // items are declared in res/xml/demo_menu.xml via ebm:menuItems
 
         button_menu.setOnMenuButtonClickListener(new ExpandableButtonMenu.OnMenuButtonClick() {
             @Override
@@ -30,8 +23,5 @@ public class MainActivity extends AppCompatActivity {
                 Toast.makeText(MainActivity.this, pos + "", Toast.LENGTH_LONG).show();
             }
         });
-
-        button_menu.getButtonMenu().setMenuButtonImage(2, R.mipmap.ic_launcher);
-        button_menu.getButtonMenu().setMenuButtonText(5, "啥？");
     }
 }